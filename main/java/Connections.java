@@ -1,11 +1,30 @@
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by Alex on 4/18/2016.
  */
 public class Connections {
     Node n1, n2;
+    /* Travel speed along the edge in meters per second, from its highway class or maxspeed. */
+    float speed;
+    /* Index of a contracted edge into GraphDB's per-profile cost arrays; -1 for raw edges. */
+    int edgeId = -1;
+    /* Shape points strictly between n1 and n2, in order from n1 to n2. Empty for raw edges. */
+    List<Node> via;
 
-    public Connections(Node n1, Node n2) {
+    public Connections(Node n1, Node n2, float speed) {
         this.n2 = n2;
         this.n1 = n1;
+        this.speed = speed;
+        this.via = new ArrayList<>(0);
+    }
+
+    public Connections(Node n1, Node n2, float speed, int edgeId, List<Node> via) {
+        this.n1 = n1;
+        this.n2 = n2;
+        this.speed = speed;
+        this.edgeId = edgeId;
+        this.via = via;
     }
 }
@@ -0,0 +1,36 @@
+/**
+ * The ways an edge can be weighed when routing. Each profile has its own float cost array in
+ * GraphDB, filled once at load time, so one loaded graph can serve all of them.
+ */
+public enum CostProfile {
+    /** Shortest route: haversine length in meters. */
+    DISTANCE("distance"),
+    /** Quickest route: seconds at the way's maxspeed, or a typical speed for its highway class. */
+    TIME("time");
+
+    private final String name;
+
+    CostProfile(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name The profile request parameter; null selects the default DISTANCE profile.
+     * @return The matching profile, or null if no profile has that name.
+     */
+    public static CostProfile fromName(String name) {
+        if (name == null) {
+            return DISTANCE;
+        }
+        for (CostProfile p : values()) {
+            if (p.name.equalsIgnoreCase(name)) {
+                return p;
+            }
+        }
+        return null;
+    }
+}
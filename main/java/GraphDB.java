@@ -2,7 +2,15 @@ import org.xml.sax.SAXException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -18,7 +26,73 @@ public class GraphDB {
      */
     HashMap<Long, Node> graph = new HashMap<>();
     HashMap<Long, Node> connectedNodes = new HashMap<>();
+    /* Nodes that survive contraction as search vertices; the rest hang off a Connections chain. */
+    HashMap<Long, Node> junctions = new HashMap<>();
+    private final boolean keepLargestComponent;
+    /* Bumped whenever a graph is built or modified, so caches of derived results can tell. */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    private volatile long version = VERSIONS.incrementAndGet();
+    /* Cost of every contracted edge under each profile, indexed [profile.ordinal()][edgeId]. */
+    float[][] edgeCosts = new float[CostProfile.values().length][0];
+    /* Scale factors for the A* estimate, fixed by clean(); see estimate(). */
+    double metersPerDegreeLon;
+    float maxSpeed;
+    /* Set when the graph is served from disk partitions instead of being parsed whole. */
+    private GraphPartitions partitions;
+    private final ReentrantLock access = new ReentrantLock();
+    static final double EARTH_RADIUS_M = 6371008.8;
+    static final double METERS_PER_DEGREE_LAT = EARTH_RADIUS_M * Math.PI / 180;
+    /* How the server cleans a parsed graph; main() partitions with the same setting so both
+     * ways of serving an extract snap and route identically. */
+    static final boolean SERVER_KEEPS_LARGEST_COMPONENT = false;
+
     public GraphDB(String db_path) {
+        this(db_path, SERVER_KEEPS_LARGEST_COMPONENT);
+    }
+
+    private GraphDB() {
+        this.keepLargestComponent = false;
+    }
+
+    /**
+     * Serve a graph previously written by writePartitions(). Partitions are loaded as routing
+     * and snapping reach them, and the least recently used are evicted once more than
+     * nodeBudget nodes are loaded.
+     * @param dir Directory holding the partitions, ending in a separator.
+     */
+    public static GraphDB openPartitions(String dir, long nodeBudget) throws IOException {
+        GraphDB g = new GraphDB();
+        g.graph = g.connectedNodes;
+        g.partitions = new GraphPartitions(g, dir, nodeBudget);
+        return g;
+    }
+
+    /**
+     * Write this graph to dir as 4^depth spatial partitions, for openPartitions().
+     */
+    public void writePartitions(String dir, int depth) throws IOException {
+        GraphPartitions.write(this, dir, depth);
+    }
+
+    /**
+     * Partition an OSM extract ahead of time, on a machine with enough heap to parse it whole.
+     * The graph is cleaned exactly as GraphDB(db_path) cleans it for the server, so disconnected
+     * fragments are kept and a partitioned server answers like a fully loaded one.
+     * Usage: java GraphDB &lt;osm file&gt; &lt;output dir&gt; [depth]
+     */
+    public static void main(String[] args) throws IOException {
+        String dir = args[1].endsWith(File.separator) ? args[1] : args[1] + File.separator;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        new GraphDB(args[0]).writePartitions(dir, depth);
+    }
+
+    /**
+     * @param db_path Path to the XML file to be parsed.
+     * @param keepLargestComponent If true, drop every road that cannot reach the largest
+     *                             connected piece of the network, so a route always exists.
+     */
+    public GraphDB(String db_path, boolean keepLargestComponent) {
+        this.keepLargestComponent = keepLargestComponent;
         try {
             File inputFile = new File(db_path);
             SAXParserFactory factory = SAXParserFactory.newInstance();
@@ -39,6 +113,115 @@ public class GraphDB {
         return connectedNodes;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public HashMap<Long, Node> getJunctions() {
+        return junctions;
+    }
+
+    public GraphPartitions getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Start a routing or snapping operation. With partitions, operations run one at a time so
+     * that nothing they touch is evicted under them; endAccess() must follow in a finally.
+     */
+    public void beginAccess() {
+        if (partitions != null) {
+            access.lock();
+        }
+    }
+
+    /**
+     * End an operation, evicting cold partitions if the memory budget is exceeded.
+     */
+    public void endAccess() {
+        if (partitions != null) {
+            try {
+                partitions.trim();
+            } finally {
+                access.unlock();
+            }
+        }
+    }
+
+    /**
+     * Make sure n's connectionsSet is complete, loading its partition if needed.
+     */
+    void ensureLoaded(Node n) {
+        if (partitions != null) {
+            partitions.ensureLoaded(n);
+        }
+    }
+
+    /**
+     * The node closest to (lon, lat) by euclidean distance in degrees.
+     */
+    Node closest(double lon, double lat) {
+        if (partitions != null) {
+            return partitions.closest(lon, lat);
+        }
+        Node closestNode = null;
+        double dist = Double.MAX_VALUE;
+        // iterate through all locations to find the closest
+        for (Node n : connectedNodes.values()) {
+            // euclidean distance
+            double newDist = Math.sqrt((lon-n.lon)*(lon-n.lon)+(lat-n.lat)*(lat-n.lat));
+            // check if we found a closer location
+            if (newDist < dist) {
+                closestNode = n;
+                dist = newDist;
+            }
+        }
+        return closestNode;
+    }
+
+    /**
+     * Cost of a contracted edge under the given profile.
+     */
+    float cost(CostProfile profile, Connections c) {
+        float[][] costs = partitions == null ? edgeCosts : partitions.costs(c.n1);
+        return costs[profile.ordinal()][c.edgeId];
+    }
+
+    /**
+     * A lower bound on the cost of travelling from a to b under the given profile, for A*.
+     * Uses a flat projection scaled at the graph's highest latitude, which never overstates
+     * the haversine distance within the extract, and needs one sqrt but no trig per call.
+     */
+    double estimate(CostProfile profile, Node a, Node b) {
+        double dy = (a.lat - b.lat) * METERS_PER_DEGREE_LAT;
+        double dx = (a.lon - b.lon) * metersPerDegreeLon;
+        double meters = 0.995 * Math.sqrt(dx * dx + dy * dy);
+        return profile == CostProfile.TIME ? meters / maxSpeed : meters;
+    }
+
+    /**
+     * Haversine distance between two nodes, in meters.
+     */
+    static double distance(Node a, Node b) {
+        double dLat = Math.toRadians(b.lat - a.lat);
+        double dLon = Math.toRadians(b.lon - a.lon);
+        double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(a.lat)) * Math.cos(Math.toRadians(b.lat))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_M * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /* Fastest raw edge between two adjacent nodes; ways sharing a segment may disagree. */
+    private static float segmentSpeed(Node a, Node b) {
+        float speed = 0;
+        for (Connections c : a.connectionsSet) {
+            if (c.n2 == b) {
+                speed = Math.max(speed, c.speed);
+            }
+        }
+        return speed;
+    }
+
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
      * @param s Input string.
@@ -52,7 +235,165 @@ public class GraphDB {
      *  Remove nodes with no connections from the graph.
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
+     *  If keepLargestComponent is set, only the largest connected component is kept, which
+     *  does guarantee it. Afterwards every run of degree-2 shape points is folded into a single
+     *  Connections between the two junctions at its ends, and the cost of each contracted
+     *  edge is computed once per CostProfile.
      */
     private void clean() {
+        /* Building outlines, POIs and non-road ways were only needed while parsing ways. */
+        graph = connectedNodes;
+        HashMap<Node, Set<Node>> neighbors = new HashMap<>();
+        for (Node n : connectedNodes.values()) {
+            Set<Node> adj = new LinkedHashSet<>();
+            for (Connections c : n.connectionsSet) {
+                if (c.n2 != n) {
+                    adj.add(c.n2);
+                }
+            }
+            neighbors.put(n, adj);
+        }
+        if (keepLargestComponent) {
+            keepLargestComponent(neighbors);
+        }
+        double maxLat = 0;
+        for (Node n : neighbors.keySet()) {
+            maxLat = Math.max(maxLat, Math.abs(n.lat));
+        }
+        metersPerDegreeLon = METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(maxLat));
+        contract(neighbors);
+        version = VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * Remove every node outside the largest connected component. Ways are added in both
+     * directions, so this is also the largest strongly connected component.
+     */
+    private void keepLargestComponent(HashMap<Node, Set<Node>> neighbors) {
+        HashSet<Node> seen = new HashSet<>();
+        List<Node> largest = new ArrayList<>();
+        for (Node root : neighbors.keySet()) {
+            if (seen.contains(root)) {
+                continue;
+            }
+            List<Node> component = new ArrayList<>();
+            ArrayDeque<Node> fringe = new ArrayDeque<>();
+            fringe.add(root);
+            seen.add(root);
+            while (!fringe.isEmpty()) {
+                Node v = fringe.poll();
+                component.add(v);
+                for (Node w : neighbors.get(v)) {
+                    if (seen.add(w)) {
+                        fringe.add(w);
+                    }
+                }
+            }
+            if (component.size() > largest.size()) {
+                largest = component;
+            }
+        }
+        HashSet<Node> keep = new HashSet<>(largest);
+        neighbors.keySet().retainAll(keep);
+        connectedNodes.values().retainAll(keep);
+    }
+
+    /**
+     * Collapse chains of degree-2 nodes. Every node with other than two distinct neighbours,
+     * or whose two segments have different speeds, is a junction; walking from a junction
+     * through shape points until the next junction yields one Connections whose via list keeps
+     * the shape points for drawing and path expansion. Shape points lose their own
+     * connectionsSet and instead point back at their chain. Since speed is constant along a
+     * chain, a shape point's share of any profile's edge cost is its share of the length.
+     */
+    private void contract(HashMap<Node, Set<Node>> neighbors) {
+        HashMap<Node, Set<Connections>> contracted = new HashMap<>();
+        ArrayList<Double> lengths = new ArrayList<>();
+        for (Node n : neighbors.keySet()) {
+            if (isJunction(n, neighbors)) {
+                walkChains(n, neighbors, contracted, lengths);
+            }
+        }
+        /* Loops made only of shape points have no junction; promote one node on each. */
+        for (Node n : neighbors.keySet()) {
+            if (n.chain == null && !contracted.containsKey(n)) {
+                walkChains(n, neighbors, contracted, lengths);
+            }
+        }
+        edgeCosts = new float[CostProfile.values().length][lengths.size()];
+        maxSpeed = 0;
+        junctions = new HashMap<>();
+        for (Node n : neighbors.keySet()) {
+            if (contracted.containsKey(n)) {
+                for (Connections c : contracted.get(n)) {
+                    double meters = lengths.get(c.edgeId);
+                    edgeCosts[CostProfile.DISTANCE.ordinal()][c.edgeId] = (float) meters;
+                    edgeCosts[CostProfile.TIME.ordinal()][c.edgeId] = (float) (meters / c.speed);
+                    maxSpeed = Math.max(maxSpeed, c.speed);
+                }
+                n.connectionsSet = contracted.get(n);
+                n.chain = null;
+                junctions.put(n.id, n);
+            } else {
+                n.connectionsSet = new HashSet<>(0);
+            }
+        }
+    }
+
+    private static boolean isJunction(Node n, HashMap<Node, Set<Node>> neighbors) {
+        Set<Node> adj = neighbors.get(n);
+        if (adj.size() != 2) {
+            return true;
+        }
+        float speed = -1;
+        for (Node w : adj) {
+            float s = segmentSpeed(n, w);
+            if (speed >= 0 && s != speed) {
+                return true;
+            }
+            speed = s;
+        }
+        return false;
+    }
+
+    private void walkChains(Node junction, HashMap<Node, Set<Node>> neighbors,
+                            HashMap<Node, Set<Connections>> contracted, List<Double> lengths) {
+        Set<Connections> edges = new HashSet<>();
+        contracted.put(junction, edges);
+        for (Node first : neighbors.get(junction)) {
+            List<Node> via = new ArrayList<>();
+            Node prev = junction;
+            Node cur = first;
+            double length = distance(prev, cur);
+            while (cur != junction && !contracted.containsKey(cur)
+                    && !isJunction(cur, neighbors)) {
+                via.add(cur);
+                Node next = null;
+                for (Node w : neighbors.get(cur)) {
+                    if (w != prev) {
+                        next = w;
+                    }
+                }
+                prev = cur;
+                cur = next;
+                length += distance(prev, cur);
+            }
+            Connections edge = new Connections(junction, cur, segmentSpeed(junction, first),
+                    lengths.size(), via);
+            lengths.add(length);
+            edges.add(edge);
+            double offset = 0;
+            Node last = junction;
+            for (int i = 0; i < via.size(); i++) {
+                Node shape = via.get(i);
+                offset += distance(last, shape);
+                last = shape;
+                if (shape.chain == null) {
+                    shape.chain = edge;
+                    shape.chainIndex = i;
+                    shape.chainOffset = offset;
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,394 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores a cleaned GraphDB on disk as spatial partitions and loads them back on demand.
+ * Partitions are the cells of a quadtree over the graph's bounding box at a fixed depth, named
+ * like the tiles in img/ ("1", "24", ...). Each contracted edge, and each shape point on it, is
+ * stored with the junction it leaves from. Every shape point is owned by exactly one partition,
+ * the one holding the direction of its chain that GraphDB.clean() recorded, so a partitioned
+ * graph searches exactly the same edges as the fully loaded one.
+ * Junctions with an edge into another partition are boundary nodes: their Node objects are kept
+ * in GraphDB.junctions even when their partition is evicted, so the edges of other partitions
+ * that point at them stay valid and pick up their connections again on reload.
+ * Not thread safe; GraphDB serialises access between beginAccess() and endAccess().
+ */
+public class GraphPartitions {
+    private static final int MAGIC = 0x4245524d;
+    private static final String INDEX_FILE = "index.bin";
+
+    /** A cell of the partition grid; bounds cover every node it owns. */
+    private static class Partition {
+        final int cell;
+        double ullat, ullon, lrlat, lrlon;
+        int nodeCount;
+        /* Null while the partition is not loaded. */
+        float[][] costs;
+        List<Node> junctions;
+        /* Junctions and owned shape points, for snapping. */
+        List<Node> nodes;
+
+        Partition(int cell) {
+            this.cell = cell;
+        }
+
+        /* Euclidean distance in degrees from (lon, lat) to the bounds; 0 if inside. */
+        double distanceTo(double lon, double lat) {
+            double dLon = Math.max(0, Math.max(ullon - lon, lon - lrlon));
+            double dLat = Math.max(0, Math.max(lrlat - lat, lat - ullat));
+            return Math.sqrt(dLon * dLon + dLat * dLat);
+        }
+    }
+
+    private final GraphDB g;
+    private final String dir;
+    private final long nodeBudget;
+    private int depth;
+    private Partition[] partitions;
+    /* Loaded partitions, least recently used first. */
+    private final LinkedHashMap<Integer, Partition> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private long loadedNodes;
+
+    /**
+     * Read the partition index in dir. No partition is loaded until a node in it is needed.
+     * @param nodeBudget Loaded nodes above which the least recently used partitions are
+     *                   evicted at the end of each access.
+     */
+    GraphPartitions(GraphDB g, String dir, long nodeBudget) throws IOException {
+        this.g = g;
+        this.dir = dir;
+        this.nodeBudget = nodeBudget;
+        try (DataInputStream in = open(INDEX_FILE)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(dir + INDEX_FILE + " is not a partition index");
+            }
+            depth = in.readInt();
+            /* The bounds of the whole grid; only the writer needs them. */
+            for (int i = 0; i < 4; i++) {
+                in.readDouble();
+            }
+            g.metersPerDegreeLon = in.readDouble();
+            g.maxSpeed = in.readFloat();
+            partitions = new Partition[1 << (2 * depth)];
+            int present = in.readInt();
+            for (int i = 0; i < present; i++) {
+                Partition p = new Partition(in.readInt());
+                p.ullat = in.readDouble();
+                p.ullon = in.readDouble();
+                p.lrlat = in.readDouble();
+                p.lrlon = in.readDouble();
+                p.nodeCount = in.readInt();
+                partitions[p.cell] = p;
+            }
+        }
+    }
+
+    public int getLoadedCount() {
+        return loaded.size();
+    }
+
+    public long getLoadedNodes() {
+        return loadedNodes;
+    }
+
+    /**
+     * The cost table of the partition holding n, loading the partition if needed.
+     */
+    float[][] costs(Node n) {
+        Partition p = partitions[n.partition];
+        if (p.costs == null) {
+            load(p);
+        }
+        return p.costs;
+    }
+
+    /**
+     * Make sure the partition holding n is loaded, so its connectionsSet is complete.
+     */
+    void ensureLoaded(Node n) {
+        Partition p = partitions[n.partition];
+        if (p.costs == null) {
+            load(p);
+        }
+        loaded.get(p.cell);
+    }
+
+    /**
+     * The closest node to (lon, lat). Partitions are scanned nearest bounds first, stopping
+     * once no remaining partition can hold anything closer.
+     */
+    Node closest(double lon, double lat) {
+        List<Partition> order = new ArrayList<>();
+        for (Partition p : partitions) {
+            if (p != null) {
+                order.add(p);
+            }
+        }
+        order.sort((a, b) -> Double.compare(a.distanceTo(lon, lat), b.distanceTo(lon, lat)));
+        Node closestNode = null;
+        double dist = Double.MAX_VALUE;
+        for (Partition p : order) {
+            if (p.distanceTo(lon, lat) >= dist) {
+                break;
+            }
+            if (p.costs == null) {
+                load(p);
+            }
+            loaded.get(p.cell);
+            for (Node n : p.nodes) {
+                double newDist = Math.sqrt((lon - n.lon) * (lon - n.lon)
+                        + (lat - n.lat) * (lat - n.lat));
+                if (newDist < dist) {
+                    closestNode = n;
+                    dist = newDist;
+                }
+            }
+        }
+        return closestNode;
+    }
+
+    /**
+     * Evict least recently used partitions until the loaded nodes fit the budget, always
+     * keeping the most recently used one.
+     */
+    void trim() {
+        Iterator<Partition> lru = loaded.values().iterator();
+        while (loadedNodes > nodeBudget && loaded.size() > 1) {
+            Partition p = lru.next();
+            lru.remove();
+            evict(p);
+        }
+    }
+
+    private void load(Partition p) {
+        int profiles = CostProfile.values().length;
+        try (DataInputStream in = open(name(p.cell, depth) + ".bin")) {
+            int junctionCount = in.readInt();
+            float[][] costs = new float[profiles][in.readInt()];
+            p.junctions = new ArrayList<>(junctionCount);
+            p.nodes = new ArrayList<>(p.nodeCount);
+            int edgeId = 0;
+            for (int i = 0; i < junctionCount; i++) {
+                Node j = junction(in.readLong(), in.readDouble(), in.readDouble(), p.cell);
+                int edgeCount = in.readInt();
+                HashSet<Connections> edges = new HashSet<>();
+                for (int e = 0; e < edgeCount; e++) {
+                    Node target = junction(in.readLong(), in.readDouble(), in.readDouble(),
+                            in.readInt());
+                    float speed = in.readFloat();
+                    for (int k = 0; k < profiles; k++) {
+                        costs[k][edgeId] = in.readFloat();
+                    }
+                    int viaCount = in.readInt();
+                    List<Node> via = new ArrayList<>(viaCount);
+                    List<Node> owned = new ArrayList<>();
+                    for (int k = 0; k < viaCount; k++) {
+                        Node shape = new Node(in.readLong(), in.readDouble(), in.readDouble());
+                        shape.partition = p.cell;
+                        if (in.readBoolean()) {
+                            shape.chainIndex = k;
+                            shape.chainOffset = in.readDouble();
+                            owned.add(shape);
+                        }
+                        via.add(shape);
+                    }
+                    Connections c = new Connections(j, target, speed, edgeId++, via);
+                    for (Node shape : owned) {
+                        shape.chain = c;
+                        p.nodes.add(shape);
+                        g.connectedNodes.put(shape.id, shape);
+                    }
+                    edges.add(c);
+                }
+                j.connectionsSet = edges;
+                p.junctions.add(j);
+                p.nodes.add(j);
+                g.connectedNodes.put(j.id, j);
+            }
+            p.costs = costs;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        loaded.put(p.cell, p);
+        loadedNodes += p.nodeCount;
+    }
+
+    /* The canonical Node for a junction, creating a stub until its partition is loaded. */
+    private Node junction(long id, double lat, double lon, int cell) {
+        Node j = g.junctions.get(id);
+        if (j == null) {
+            j = new Node(id, lat, lon);
+            j.partition = cell;
+            g.junctions.put(id, j);
+        }
+        return j;
+    }
+
+    private void evict(Partition p) {
+        for (Node j : p.junctions) {
+            boolean boundary = false;
+            for (Connections c : j.connectionsSet) {
+                boundary |= c.n2.partition != p.cell;
+            }
+            j.connectionsSet = new HashSet<>(0);
+            if (!boundary) {
+                g.junctions.remove(j.id);
+            }
+        }
+        for (Node n : p.nodes) {
+            if (g.connectedNodes.get(n.id) == n) {
+                g.connectedNodes.remove(n.id);
+            }
+        }
+        p.costs = null;
+        p.junctions = null;
+        p.nodes = null;
+        loadedNodes -= p.nodeCount;
+    }
+
+    private DataInputStream open(String file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(dir + file)));
+    }
+
+    /* The quadtree name of a cell, using the img/ child order: 1 2 on top, 3 4 below. */
+    private static String name(int cell, int depth) {
+        if (depth == 0) {
+            return "root";
+        }
+        int side = 1 << depth;
+        int row = cell / side, col = cell % side;
+        StringBuilder sb = new StringBuilder();
+        for (int level = depth - 1; level >= 0; level--) {
+            sb.append(1 + ((col >> level) & 1) + 2 * ((row >> level) & 1));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write a fully loaded, cleaned graph to dir as 4^depth partitions plus an index.
+     * @param dir Output directory, ending in a separator; created if missing.
+     */
+    static void write(GraphDB g, String dir, int depth) throws IOException {
+        new File(dir).mkdirs();
+        double maxLat = -Double.MAX_VALUE, minLon = Double.MAX_VALUE;
+        double minLat = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        for (Node n : g.connectedNodes.values()) {
+            maxLat = Math.max(maxLat, n.lat);
+            minLat = Math.min(minLat, n.lat);
+            maxLon = Math.max(maxLon, n.lon);
+            minLon = Math.min(minLon, n.lon);
+        }
+        int side = 1 << depth;
+        HashMap<Node, Integer> cells = new HashMap<>();
+        HashMap<Integer, List<Node>> byCell = new HashMap<>();
+        for (Node j : g.junctions.values()) {
+            int col = (int) ((j.lon - minLon) / (maxLon - minLon) * side);
+            int row = (int) ((maxLat - j.lat) / (maxLat - minLat) * side);
+            int cell = Math.min(Math.max(row, 0), side - 1) * side
+                    + Math.min(Math.max(col, 0), side - 1);
+            cells.put(j, cell);
+            byCell.computeIfAbsent(cell, k -> new ArrayList<>()).add(j);
+        }
+        List<Partition> written = new ArrayList<>();
+        for (Map.Entry<Integer, List<Node>> entry : byCell.entrySet()) {
+            written.add(writePartition(g, dir, entry.getKey(), depth, entry.getValue(), cells));
+        }
+        Collections.sort(written, (a, b) -> Integer.compare(a.cell, b.cell));
+        try (DataOutputStream out = create(dir + INDEX_FILE)) {
+            out.writeInt(MAGIC);
+            out.writeInt(depth);
+            out.writeDouble(maxLat);
+            out.writeDouble(minLon);
+            out.writeDouble(minLat);
+            out.writeDouble(maxLon);
+            out.writeDouble(g.metersPerDegreeLon);
+            out.writeFloat(g.maxSpeed);
+            out.writeInt(written.size());
+            for (Partition p : written) {
+                out.writeInt(p.cell);
+                out.writeDouble(p.ullat);
+                out.writeDouble(p.ullon);
+                out.writeDouble(p.lrlat);
+                out.writeDouble(p.lrlon);
+                out.writeInt(p.nodeCount);
+            }
+        }
+    }
+
+    private static Partition writePartition(GraphDB g, String dir, int cell, int depth,
+                                            List<Node> junctions, HashMap<Node, Integer> cells)
+            throws IOException {
+        Partition p = new Partition(cell);
+        p.ullat = -Double.MAX_VALUE;
+        p.ullon = Double.MAX_VALUE;
+        p.lrlat = Double.MAX_VALUE;
+        p.lrlon = -Double.MAX_VALUE;
+        int edgeCount = 0;
+        for (Node j : junctions) {
+            edgeCount += j.connectionsSet.size();
+        }
+        try (DataOutputStream out = create(dir + name(cell, depth) + ".bin")) {
+            out.writeInt(junctions.size());
+            out.writeInt(edgeCount);
+            for (Node j : junctions) {
+                writeNode(out, j);
+                include(p, j);
+                p.nodeCount++;
+                out.writeInt(j.connectionsSet.size());
+                for (Connections c : j.connectionsSet) {
+                    writeNode(out, c.n2);
+                    out.writeInt(cells.get(c.n2));
+                    out.writeFloat(c.speed);
+                    for (CostProfile profile : CostProfile.values()) {
+                        out.writeFloat(g.cost(profile, c));
+                    }
+                    out.writeInt(c.via.size());
+                    for (Node shape : c.via) {
+                        writeNode(out, shape);
+                        /* Only the direction clean() recorded owns the shape point. */
+                        boolean owned = shape.chain == c;
+                        out.writeBoolean(owned);
+                        if (owned) {
+                            out.writeDouble(shape.chainOffset);
+                            include(p, shape);
+                        }
+                    }
+                    p.nodeCount += c.via.size();
+                }
+            }
+        }
+        return p;
+    }
+
+    private static void writeNode(DataOutputStream out, Node n) throws IOException {
+        out.writeLong(n.id);
+        out.writeDouble(n.lat);
+        out.writeDouble(n.lon);
+    }
+
+    private static void include(Partition p, Node n) {
+        p.ullat = Math.max(p.ullat, n.lat);
+        p.lrlat = Math.min(p.lrlat, n.lat);
+        p.ullon = Math.min(p.ullon, n.lon);
+        p.lrlon = Math.max(p.lrlon, n.lon);
+    }
+
+    private static DataOutputStream create(String file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+}
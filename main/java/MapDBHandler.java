@@ -4,7 +4,9 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -29,10 +31,34 @@ public class MapDBHandler extends DefaultHandler {
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
+    /**
+     * Typical speeds in km/h for each allowed highway type, used for the TIME cost profile
+     * when a way carries no usable
+     * <a href="http://wiki.openstreetmap.org/wiki/Key:maxspeed">maxspeed tag</a>.
+     */
+    private static final Map<String, Double> DEFAULT_SPEEDS_KMH = new HashMap<>();
+    static {
+        DEFAULT_SPEEDS_KMH.put("motorway", 105.0);
+        DEFAULT_SPEEDS_KMH.put("trunk", 90.0);
+        DEFAULT_SPEEDS_KMH.put("primary", 65.0);
+        DEFAULT_SPEEDS_KMH.put("secondary", 55.0);
+        DEFAULT_SPEEDS_KMH.put("tertiary", 45.0);
+        DEFAULT_SPEEDS_KMH.put("unclassified", 40.0);
+        DEFAULT_SPEEDS_KMH.put("residential", 30.0);
+        DEFAULT_SPEEDS_KMH.put("living_street", 10.0);
+        DEFAULT_SPEEDS_KMH.put("motorway_link", 60.0);
+        DEFAULT_SPEEDS_KMH.put("trunk_link", 50.0);
+        DEFAULT_SPEEDS_KMH.put("primary_link", 45.0);
+        DEFAULT_SPEEDS_KMH.put("secondary_link", 40.0);
+        DEFAULT_SPEEDS_KMH.put("tertiary_link", 35.0);
+    }
+    private static final double KMH_PER_MPH = 1.609344;
     private String activeState = "";
     private final GraphDB g;
     private ArrayList<Node> ways;
     private boolean isAllowed = false;
+    private String highway;
+    private String maxspeed;
     public MapDBHandler(GraphDB g) {
         this.g = g;
     }
@@ -65,6 +91,8 @@ public class MapDBHandler extends DefaultHandler {
         } else if (qName.equals("way")) {
             activeState = "way";
             ways = new ArrayList<>();
+            highway = null;
+            maxspeed = null;
 //            System.out.println("Beginning a way...");
         } else if (activeState.equals("way") && qName.equals("nd")) {
             ways.add(g.getGraph().get(Long.parseLong(attributes.getValue("ref"))));
@@ -74,7 +102,10 @@ public class MapDBHandler extends DefaultHandler {
             if (k.equals("highway")) {
                 if (ALLOWED_HIGHWAY_TYPES.contains(v)) {
                     isAllowed = true;
+                    highway = v;
                 }
+            } else if (k.equals("maxspeed")) {
+                maxspeed = v;
             }
 //            System.out.println("Tag with k=" + k + ", v=" + v + ".");
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
@@ -99,11 +130,12 @@ public class MapDBHandler extends DefaultHandler {
         if (qName.equals("way")) {
             if (ways.size() > 1) {
                 if (isAllowed) {
+                    float speed = (float) (speedKmh() / 3.6);
                     for (int i = 0; i < ways.size(); i++) {
                         g.getConnected().put(ways.get(i).id, ways.get(i));
                         if (i > 0) {
-                            ways.get(i).connectionsSet.add(new Connections(ways.get(i), ways.get(i - 1)));
-                            ways.get(i - 1).connectionsSet.add(new Connections(ways.get(i - 1), ways.get(i)));
+                            ways.get(i).connectionsSet.add(new Connections(ways.get(i), ways.get(i - 1), speed));
+                            ways.get(i - 1).connectionsSet.add(new Connections(ways.get(i - 1), ways.get(i), speed));
                         }
                     }
                 }
@@ -113,4 +145,22 @@ public class MapDBHandler extends DefaultHandler {
         }
     }
 
+    /**
+     * The speed of the current way: its maxspeed if it starts with a number (km/h unless
+     * suffixed with mph), otherwise the default for its highway type.
+     */
+    private double speedKmh() {
+        if (maxspeed != null) {
+            String number = maxspeed.trim().split("[^0-9.]", 2)[0];
+            try {
+                double v = Double.parseDouble(number);
+                if (v > 0) {
+                    return maxspeed.contains("mph") ? v * KMH_PER_MPH : v;
+                }
+            } catch (NumberFormatException e) {
+                /* "signals", "walk", "US:urban" and the like fall back to the highway type. */
+            }
+        }
+        return DEFAULT_SPEEDS_KMH.get(highway);
+    }
 }
@@ -2,6 +2,7 @@ import java.awt.*;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
@@ -29,6 +30,10 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response while the data an endpoint needs is still loading. */
+    private static final int NOT_READY_RESPONSE = 503;
+    /** HTTP response once a startup stage an endpoint needs has failed and will never load. */
+    private static final int FAILED_RESPONSE = 500;
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
@@ -37,9 +42,19 @@ public class MapServer {
     private static final String IMG_ROOT = "img/";
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
-     * using custom region selection.
+     * using custom region selection. Override with -Dbearmaps.osm=path.
      **/
-    private static final String OSM_DB_PATH = "berkeley.osm";
+    private static final String OSM_DB_PATH = System.getProperty("bearmaps.osm", "berkeley.osm");
+    /**
+     * For extracts too large to parse whole: a directory written by
+     * <code>java GraphDB &lt;osm file&gt; &lt;dir&gt;</code>. If it holds a partition index, the
+     * graph is served from it instead of OSM_DB_PATH, keeping at most PARTITION_NODE_BUDGET
+     * nodes loaded.
+     **/
+    private static final String OSM_PARTITION_DIR =
+            System.getProperty("bearmaps.partitions", "partitions/");
+    private static final long PARTITION_NODE_BUDGET =
+            Long.getLong("bearmaps.partition_budget", 2000000L);
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -54,13 +69,35 @@ public class MapServer {
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat -> start point latitude,<br> start_lon -> start point longitude,<br>
-     * end_lat -> end point latitude, <br>end_lon -> end point longitude.
+     * end_lat -> end point latitude, <br>end_lon -> end point longitude.<br>
+     * An optional profile parameter selects the CostProfile by name; it defaults to distance.
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
     /* Define any static variables here. Do not define any instance variables of MapServer. */
     private static GraphDB g;
     private static LinkedList<Long> route;
+    private static List<Node> routeNodes;
+    /** Identifies routeNodes for the overlay cache; changes whenever a different list is set. */
+    private static long routeId;
+    /** Most recently used routes, so repeated trips skip snapping and searching. */
+    private static final int ROUTE_CACHE_SIZE = 1024, SNAP_CACHE_SIZE = 4096;
+    private static RouteCache routeCache;
+    /** The tile quadtree, built once at startup rather than on every raster request. */
+    private static QuadTree quadTree;
+    /** Startup stages; handlers answer NOT_READY_RESPONSE until the ones they need are done. */
+    private static Startup startup;
+    /** Stitched tile mosaics and route overlays, cached apart and composited per request. */
+    private static final int BASE_CACHE_SIZE = 16, OVERLAY_CACHE_SIZE = 64;
+    private static final RasterCache rasterCache =
+            new RasterCache(BASE_CACHE_SIZE, OVERLAY_CACHE_SIZE);
+    /** Decoded tiles, filled by raster requests and, in a separate area, by the prefetcher. */
+    private static final int TILE_CACHE_SIZE = 256, PREFETCH_CACHE_SIZE = 96;
+    private static final TileCache tileCache =
+            new TileCache(IMG_ROOT, TILE_CACHE_SIZE, PREFETCH_CACHE_SIZE);
+    private static TilePrefetcher prefetcher;
+    private static final int STARTUP_THREADS =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
 
     /**
      * Place any initialization statements that will be run before the server main loop here.
@@ -68,11 +105,55 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        g = new GraphDB("berkeley.osm");
+        // waits for every stage and rethrows the first failure, so the server is never left
+        // half loaded; main() instead starts answering while the stages run
+        startInitialization().await();
+    }
+
+    /**
+     * Schedule every startup stage and return without waiting for them, so the server can
+     * start answering (with NOT_READY_RESPONSE, or /health/ready) while they run.
+     */
+    private static Startup startInitialization() {
+        startup = new Startup(STARTUP_THREADS)
+                .stage("graph", MapServer::loadGraph)
+                .stage("route_cache", () -> routeCache = new RouteCache(ROUTE_CACHE_SIZE,
+                        SNAP_CACHE_SIZE, g.getVersion()), "graph")
+                .stage("quadtree", () -> quadTree = new QuadTree())
+                .stage("prefetch", () -> prefetcher = new TilePrefetcher(quadTree, tileCache),
+                        "quadtree")
+                .start();
+        return startup;
+    }
+
+    private static void loadGraph() {
+        if (new File(OSM_PARTITION_DIR, "index.bin").exists()) {
+            try {
+                g = GraphDB.openPartitions(OSM_PARTITION_DIR, PARTITION_NODE_BUDGET);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            g = new GraphDB(OSM_DB_PATH);
+        }
+    }
+
+    /**
+     * Halt the request unless every named startup stage is done: with FAILED_RESPONSE if one
+     * of them has failed, otherwise with NOT_READY_RESPONSE.
+     */
+    private static void requireReady(String... stages) {
+        String failed = startup.failed(stages);
+        if (failed != null) {
+            halt(FAILED_RESPONSE, "Server failed to load " + failed + " - see the server log.");
+        }
+        if (!startup.isReady(stages)) {
+            halt(NOT_READY_RESPONSE, "Server is still loading - try again shortly.");
+        }
     }
 
     public static void main(String[] args) {
-        initialize();
+        startInitialization();
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -85,12 +166,25 @@ public class MapServer {
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
          * the request handlers. */
         get("/raster", (req, res) -> {
+            requireReady("quadtree", "prefetch");
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
             /* The png image is written to the ByteArrayOutputStream */
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = getMapRaster(params, os);
+            Map<String, Object> rasteredImgParams;
+            prefetcher.beginForeground();
+            try {
+                rasteredImgParams = getMapRaster(params, os);
+            } finally {
+                prefetcher.endForeground();
+            }
+            /* Guess where this client goes next and warm the tile cache for it */
+            if (rasteredImgParams.containsKey("depth")) {
+                prefetcher.record(req.ip(), params.get("ullat"), params.get("ullon"),
+                        params.get("lrlat"), params.get("lrlon"),
+                        (Integer) rasteredImgParams.get("depth"));
+            }
             /* On an image query success, add the image data to the response */
             if (rasteredImgParams.containsKey("query_success")
                     && (Boolean) rasteredImgParams.get("query_success")) {
@@ -104,12 +198,43 @@ public class MapServer {
 
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
+            requireReady("graph", "route_cache");
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            LinkedList<Long> route = findAndSetRoute(params);
+            CostProfile profile = CostProfile.fromName(req.queryParams("profile"));
+            if (profile == null) {
+                halt(HALT_RESPONSE, "Incorrect parameters - unknown profile.");
+            }
+            LinkedList<Long> route = findAndSetRoute(params, profile);
             return !route.isEmpty();
         });
 
+        /* Define the API endpoint for tile cache and prefetch statistics. */
+        get("/raster_stats", (req, res) -> {
+            requireReady("prefetch");
+            Gson gson = new Gson();
+            return gson.toJson(prefetcher.stats());
+        });
+
+        /* Define the API endpoint for route cache statistics. */
+        get("/route_stats", (req, res) -> {
+            requireReady("route_cache");
+            Gson gson = new Gson();
+            return gson.toJson(routeCache.stats());
+        });
+
+        /* Define the readiness endpoint: per-stage startup progress, 503 until all are done
+         * and 500 once any has failed. */
+        get("/health/ready", (req, res) -> {
+            if (startup.failed() != null) {
+                res.status(FAILED_RESPONSE);
+            } else if (!startup.isReady()) {
+                res.status(NOT_READY_RESPONSE);
+            }
+            Gson gson = new Gson();
+            return gson.toJson(startup.status());
+        });
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
             clearRoute();
@@ -165,7 +290,7 @@ public class MapServer {
         return params;
     }
 
-    public int getDepth(Map<String, Double> params) {
+    public static int getDepth(Map<String, Double> params) {
         double xDist = params.get("ullon") - params.get("lrlon");
         // calculate the distance per pixel
         double dpp = Math.abs(xDist / params.get("w"));
@@ -181,7 +306,7 @@ public class MapServer {
         return Math.min(depth, 7);
     }
 
-    public int getImageHeight(ArrayList<QuadTree.QTreeNode> tiles) {
+    public static int getImageHeight(ArrayList<QuadTree.QTreeNode> tiles) {
         int height = 1; 
         // calculate the height (in tiles) of the buffered image
         for (int i = 1; i<tiles.size(); i++) {
@@ -192,13 +317,14 @@ public class MapServer {
         return height;
     }
 
-    public void drawTiles(ArrayList<QuadTree.QTreeNode> tiles, Graphics graph) {
+    public static void drawTiles(ArrayList<QuadTree.QTreeNode> tiles, Graphics graph)
+            throws IOException {
         // x and y indicate the postion of the top-left of the image
         int x = 0, y = 0;
             
         for (int i = 0; i < tiles.size(); i++) {
             QuadTree.QTreeNode node = tiles.get(i);
-            BufferedImage bi = ImageIO.read(new File("img/" + node.getFileName() + ".png"));
+            BufferedImage bi = tileCache.get(node.getFileName());
             // draw image bi with (x, y) as coordinate of top-left of the image
             graph.drawImage(bi, x, y, null);
             // every image is 256x256
@@ -213,62 +339,243 @@ public class MapServer {
         }
     }
 
-    // use Dijkstra's algorithm to find route between startNode and endNode
-    public LinkedList<Long> AStarSearch(Node startNode, Node endNode) {
-        route  = new LinkedList<>();
-        HashSet<Node> visited = new HashSet<>();
-        HashMap<Node, Double> distances = new HashMap<>();
-        HashMap<Node, Node> prev = new HashMap<>();
-        PriorityQueue<Node> fringe = new PriorityQueue<>();
-        fringe.add(startNode);
-        distances.put(startNode, 0.0);
-        while (fringe.size()>0) {
-            Node v = fringe.poll();
-            if (visited.contains(v)) {
+    // draws the route onto its own transparent layer, cropped to the route's bounding box plus
+    // the stroke width and clipped to the width x height mosaic whose upper left corner is
+    // ulLon/ulLat, so a long route never needs a layer larger than the mosaic
+    public static RasterCache.Overlay drawRoute(List<Node> path, double ulLon, double ulLat,
+                                                double wDDP, double hDDP, int width,
+                                                int height) {
+        int n = path.size();
+        if (n < 2) {
+            return new RasterCache.Overlay(null, 0, 0);
+        }
+        int[] xs = new int[n];
+        int[] ys = new int[n];
+        int i = 0;
+        for (Node node : path) {
+            // calculate relative lon and lat for the node
+            xs[i] = (int) Math.floor((node.lon - ulLon) / wDDP);
+            ys[i] = (int) Math.floor((ulLat - node.lat) / hDDP);
+            i++;
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (i = 0; i < n; i++) {
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        int margin = (int) Math.ceil(ROUTE_STROKE_WIDTH_PX) + 1;
+        int ox = Math.max(minX - margin, 0), oy = Math.max(minY - margin, 0);
+        int ex = Math.min(maxX + margin, width - 1), ey = Math.min(maxY + margin, height - 1);
+        if (ox > ex || oy > ey) {
+            // the route does not cross this mosaic
+            return new RasterCache.Overlay(null, 0, 0);
+        }
+        // segments reaching outside the layer are clipped by Java2D
+        BufferedImage layer = new BufferedImage(ex - ox + 1, ey - oy + 1,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graph = layer.createGraphics();
+        graph.setStroke(new BasicStroke(ROUTE_STROKE_WIDTH_PX, BasicStroke.CAP_ROUND,
+                BasicStroke.JOIN_ROUND));
+        graph.setColor(ROUTE_STROKE_COLOR);
+        for (i = 0; i < n - 1; i++) {
+            graph.drawLine(xs[i] - ox, ys[i] - oy, xs[i + 1] - ox, ys[i + 1] - oy);
+        }
+        graph.dispose();
+        return new RasterCache.Overlay(layer, ox, oy);
+    }
+
+    /* A fringe entry; kept apart from Node so that concurrent searches do not share state. */
+    private static class SearchEntry implements Comparable<SearchEntry> {
+        final Node node;
+        final double fn;
+
+        SearchEntry(Node node, double fn) {
+            this.node = node;
+            this.fn = fn;
+        }
+
+        public int compareTo(SearchEntry e) {
+            return Double.compare(fn, e.fn);
+        }
+    }
+
+    public static LinkedList<Long> AStarSearch(Node startNode, Node endNode) {
+        return AStarSearch(startNode, endNode, CostProfile.DISTANCE);
+    }
+
+    // use A* over the contracted junction graph to find route between startNode and endNode.
+    // Either endpoint may be a shape point inside a contracted edge, in which case the search
+    // starts (or ends) at both junctions of that edge, offset by its share of the edge cost.
+    // Holds the graph's access lock like findAndSetRoute, so a partitioned graph neither evicts
+    // partitions mid-search nor keeps the ones it loads past the budget.
+    public static LinkedList<Long> AStarSearch(Node startNode, Node endNode,
+                                               CostProfile profile) {
+        g.beginAccess();
+        try {
+            return setRoute(search(startNode, endNode, profile));
+        } finally {
+            g.endAccess();
+        }
+    }
+
+    // makes path the current route, keeping its nodes so it can be drawn even after a
+    // partitioned graph has evicted them. A route served again from the RouteCache is the same
+    // list, so it keeps its id and its cached overlays. Returns the route's ids, which callers
+    // return rather than reading route again after another request may have replaced it.
+    private static synchronized LinkedList<Long> setRoute(List<Node> path) {
+        LinkedList<Long> ids = new LinkedList<>();
+        for (Node n : path) {
+            ids.add(n.id);
+        }
+        if (path != routeNodes) {
+            routeId++;
+        }
+        routeNodes = path;
+        route = ids;
+        return ids;
+    }
+
+    private static LinkedList<Node> search(Node startNode, Node endNode, CostProfile profile) {
+        LinkedList<Node> path = new LinkedList<>();
+        if (startNode == null || endNode == null) {
+            return path;
+        }
+        if (startNode == endNode) {
+            path.add(startNode);
+            return path;
+        }
+        // keyed by identity: a partition loading mid-search changes a node's connectionsSet,
+        // and with it Node.hashCode
+        Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        IdentityHashMap<Node, Double> distances = new IdentityHashMap<>();
+        IdentityHashMap<Node, Connections> prev = new IdentityHashMap<>();
+        IdentityHashMap<Node, Double> targets = endpointCosts(endNode, profile);
+        PriorityQueue<SearchEntry> fringe = new PriorityQueue<>();
+        for (Map.Entry<Node, Double> seed : endpointCosts(startNode, profile).entrySet()) {
+            Node s = seed.getKey();
+            distances.put(s, seed.getValue());
+            fringe.add(new SearchEntry(s, seed.getValue() + g.estimate(profile, s, endNode)));
+        }
+        double best = Double.MAX_VALUE;
+        Node bestJunction = null;
+        // both endpoints on the same chain: walking straight along it is a candidate
+        if (startNode.chain != null && startNode.chain == endNode.chain) {
+            best = Math.abs(chainShare(startNode) - chainShare(endNode))
+                    * g.cost(profile, startNode.chain);
+        }
+        while (fringe.size() > 0) {
+            SearchEntry entry = fringe.poll();
+            if (entry.fn >= best) {
+                break;
+            }
+            Node v = entry.node;
+            if (!visited.add(v)) {
                 continue;
             }
-            visited.add(v);
-            if(v==endNode) {
-                break;
+            double dist = distances.get(v);
+            Double toEnd = targets.get(v);
+            if (toEnd != null && dist + toEnd < best) {
+                best = dist + toEnd;
+                bestJunction = v;
             }
-            for (Connections c: v.connectionsSet) {
-                if(!distances.containsKey(c.n2) || distances.get(c.n2) > distances.get(v) + Math.sqrt((c.n2.lon-v.lon)*(c.n2.lon-v.lon)+(c.n2.lat-v.lat)*(c.n2.lat-v.lat))) {
-                    distances.put(c.n2, distances.get(v) + Math.sqrt((c.n2.lon-v.lon)*(c.n2.lon-v.lon)+(c.n2.lat-v.lat)*(c.n2.lat-v.lat)));
-                    c.n2.setFn(Math.sqrt((c.n2.lon-endNode.lon)*(c.n2.lon-endNode.lon)+(c.n2.lat-endNode.lat)*(c.n2.lat-endNode.lat)) + distances.get(c.n2));
-                    fringe.add(c.n2);
-                    prev.put(c.n2, v);
+            g.ensureLoaded(v);
+            for (Connections c : v.connectionsSet) {
+                double newDist = dist + g.cost(profile, c);
+                Double oldDist = distances.get(c.n2);
+                if (oldDist == null || newDist < oldDist) {
+                    distances.put(c.n2, newDist);
+                    prev.put(c.n2, c);
+                    fringe.add(new SearchEntry(c.n2,
+                            newDist + g.estimate(profile, c.n2, endNode)));
                 }
-
             }
         }
-        Node N = endNode;
-        while(prev.get(N) != startNode) {
-            route.addFirst(N.id);
-            N = prev.get(N);
+        if (best == Double.MAX_VALUE) {
+            return path;
+        }
+        if (bestJunction == null) {
+            List<Node> via = startNode.chain.via;
+            int step = startNode.chainIndex < endNode.chainIndex ? 1 : -1;
+            for (int i = startNode.chainIndex; i != endNode.chainIndex + step; i += step) {
+                path.add(via.get(i));
+            }
+            return path;
+        }
+        // walk the contracted edges back to whichever seed the path started from
+        LinkedList<Connections> edges = new LinkedList<>();
+        Node n = bestJunction;
+        while (prev.containsKey(n)) {
+            Connections c = prev.get(n);
+            edges.addFirst(c);
+            n = c.n1;
+        }
+        if (startNode.chain == null) {
+            path.add(startNode);
+        } else {
+            path.addAll(chainTo(startNode, n));
+        }
+        for (Connections c : edges) {
+            path.addAll(c.via);
+            path.add(c.n2);
         }
-        route.addFirst(N.id);
-        route.addFirst(startNode.id);
-        return route;
+        if (endNode.chain != null) {
+            LinkedList<Node> tail = chainTo(endNode, bestJunction);
+            tail.removeLast();
+            while (!tail.isEmpty()) {
+                path.add(tail.removeLast());
+            }
+        }
+        return path;
+    }
 
+    // costs of reaching the search vertices from n: n itself if it is a junction, otherwise
+    // the two ends of the contracted edge n lies on
+    private static IdentityHashMap<Node, Double> endpointCosts(Node n, CostProfile profile) {
+        IdentityHashMap<Node, Double> costs = new IdentityHashMap<>();
+        if (n.chain == null) {
+            costs.put(n, 0.0);
+        } else {
+            Connections c = n.chain;
+            double share = chainShare(n);
+            costs.put(c.n1, share * g.cost(profile, c));
+            costs.merge(c.n2, (1 - share) * g.cost(profile, c), Math::min);
+        }
+        return costs;
     }
 
-    // finds the closest Location to the specified longitude and latitude
-    public Node findClosest(double lon, double lat) {
-        Node closestNode = null;
-        double dist = Double.MAX_VALUE;
-        // iterate through all locations to find the closest
-        for (Map.Entry<Long, Node> entry: g.getConnected().entrySet()) {
-            Node n = entry.getValue();
-            // euclidean distance
-            double newDist = Math.sqrt((startLon-n.lon)*(startLon-n.lon)+(startLat-n.lat)*(startLat-n.lat));
-            // check if we found a closer location
-            if (newDist < dist) {
-                startNode = n;
-                dist = newDist;
+    // fraction of its chain's length that lies between the chain's n1 and the shape point
+    private static double chainShare(Node shape) {
+        float length = g.cost(CostProfile.DISTANCE, shape.chain);
+        return length == 0 ? 0 : Math.min(1, shape.chainOffset / length);
+    }
+
+    // nodes from the shape point along its chain to the given end junction, both inclusive
+    private static LinkedList<Node> chainTo(Node shape, Node junction) {
+        Connections c = shape.chain;
+        boolean towardN1 = junction == c.n1
+                && (c.n1 != c.n2 || chainShare(shape) <= 0.5);
+        LinkedList<Node> nodes = new LinkedList<>();
+        nodes.add(shape);
+        if (towardN1) {
+            for (int i = shape.chainIndex - 1; i >= 0; i--) {
+                nodes.add(c.via.get(i));
+            }
+            nodes.add(c.n1);
+        } else {
+            for (int i = shape.chainIndex + 1; i < c.via.size(); i++) {
+                nodes.add(c.via.get(i));
             }
+            nodes.add(c.n2);
         }
-        return closestNode;
+        return nodes;
+    }
 
+    // finds the closest Location to the specified longitude and latitude
+    public static Node findClosest(double lon, double lat) {
+        return g.closest(lon, lat);
     }
 
 
@@ -308,7 +615,7 @@ public class MapServer {
      */
     public static Map<String, Object> getMapRaster(Map<String, Double> params, OutputStream os) {
         // this Quadtree contains all "zoom levels"
-        QuadTree map = new QuadTree();
+        QuadTree map = quadTree;
         // calculates the depth of the images to be rastered
         int depth = getDepth(params);
         // stores the images to be rastered
@@ -321,33 +628,44 @@ public class MapServer {
         HashMap<String, Object> rasteredImageParams = new HashMap<>();
         try {
             // calculate the height in terms of tiles of the image to be rastered
-            int height = getImageHeight(tiles); 
-            BufferedImage im = new BufferedImage((tiles.size()/height) * 256, height * 256, BufferedImage.TYPE_INT_RGB);
-            Graphics graph = im.getGraphics();
-            // x and y indicate the postion of the top-left of the image
-            int x = 0, y = 0;
-            // draw all the tiles on a BufferedImage
-            drawTiles(tiles, graph);
-
+            int height = getImageHeight(tiles);
             double raster_height = height * 256;
             double raster_width = (tiles.size()/height) * 256;
             double wDDP = (tiles.get(tiles.size()-1).getLrlon()-tiles.get(0).getUllon())/raster_width;
             double hDDP = (tiles.get(0).getUllat()-tiles.get(tiles.size()-1).getLrlat())/raster_height;
+            // the first and last tile names identify the whole (rectangular) range at this depth
+            String tileRange = tiles.get(0).getFileName() + "-" + tiles.get(tiles.size()-1).getFileName();
+            BufferedImage base = rasterCache.getBase(tileRange);
+            if (base == null) {
+                base = new BufferedImage((int) raster_width, (int) raster_height, BufferedImage.TYPE_INT_RGB);
+                // draw all the tiles on a BufferedImage
+                Graphics graph = base.getGraphics();
+                drawTiles(tiles, graph);
+                graph.dispose();
+                rasterCache.putBase(tileRange, base);
+            }
+            BufferedImage im = base;
             // draws a route if user requests a route between two locations
-            if (route != null) {
-                Stroke stroke = new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
-                ((Graphics2D) graph).setStroke(stroke);
-                graph.setColor(MapServer.ROUTE_STROKE_COLOR);
-                for (int i = 0; i<route.size()-1;i++) {
-                    Node node1 = g.getConnected().get(route.get(i));
-                    Node node2 = g.getConnected().get(route.get(i+1));
-                    // calculate relative lon and lat for node1
-                    int lon1 = (int) Math.floor((node1.lon-tiles.get(0).getUllon())/wDDP);
-                    int lat1 = (int) Math.floor((tiles.get(0).getUllat()-node1.lat)/hDDP);
-                    // calculate relative lon and lat for node2
-                    int lon2 = (int) Math.floor((node2.lon-tiles.get(0).getUllon())/wDDP);
-                    int lat2 = (int) Math.floor((tiles.get(0).getUllat()-node2.lat)/hDDP);
-                    graph.drawLine(lon1, lat1, lon2, lat2);
+            List<Node> current;
+            long currentId;
+            synchronized (MapServer.class) {
+                current = routeNodes;
+                currentId = routeId;
+            }
+            if (current != null) {
+                RasterCache.Overlay overlay = rasterCache.getOverlay(currentId, tileRange);
+                if (overlay == null) {
+                    overlay = drawRoute(current, tiles.get(0).getUllon(), tiles.get(0).getUllat(),
+                            wDDP, hDDP, (int) raster_width, (int) raster_height);
+                    rasterCache.putOverlay(currentId, tileRange, overlay);
+                }
+                if (overlay.image != null) {
+                    // composite onto a copy so the cached base stays clean
+                    im = new BufferedImage(base.getWidth(), base.getHeight(), BufferedImage.TYPE_INT_RGB);
+                    Graphics graph = im.getGraphics();
+                    graph.drawImage(base, 0, 0, null);
+                    graph.drawImage(overlay.image, overlay.x, overlay.y, null);
+                    graph.dispose();
                 }
             }
             // required parameters
@@ -379,20 +697,70 @@ public class MapServer {
      * @return A LinkedList of node ids from the start of the route to the end.
      */
     public static LinkedList<Long> findAndSetRoute(Map<String, Double> params) {
+        return findAndSetRoute(params, CostProfile.DISTANCE);
+    }
+
+    /**
+     * As findAndSetRoute(params), but minimising the cost under the given profile.
+     */
+    public static LinkedList<Long> findAndSetRoute(Map<String, Double> params,
+                                                   CostProfile profile) {
         double startLon = params.get("start_lon");
         double startLat = params.get("start_lat");
         double endLon = params.get("end_lon");
         double endLat = params.get("end_lat");
-        Node startNode = findClosest(startLon, startLat);
-        Node endNode = findClosest(endLon, endLat);
-        return AStarSearch(startNode, endNode);
+        g.beginAccess();
+        try {
+            long version = g.getVersion();
+            Node startNode = snap(startLon, startLat, version);
+            Node endNode = snap(endLon, endLat, version);
+            if (startNode == null || endNode == null) {
+                return setRoute(new LinkedList<>());
+            }
+            RouteCache.Route cached = routeCache.get(startNode.id, endNode.id, profile, version);
+            if (cached != null) {
+                return setRoute(cached.getNodes());
+            }
+            long t0 = System.nanoTime();
+            List<Node> path = search(startNode, endNode, profile);
+            long searchNanos = System.nanoTime() - t0;
+            RouteCache.Route found = new RouteCache.Route(path, routeLength(path), searchNanos);
+            routeCache.put(startNode.id, endNode.id, profile, version, found);
+            return setRoute(found.getNodes());
+        } finally {
+            g.endAccess();
+        }
+    }
+
+    // findClosest, remembering the answer for coordinates that are requested again
+    private static Node snap(double lon, double lat, long version) {
+        Long id = routeCache.getSnap(lon, lat, version);
+        // a partitioned graph may have evicted the node since; snap again if so
+        Node n = id == null ? null : g.getConnected().get(id);
+        if (n != null) {
+            return n;
+        }
+        n = findClosest(lon, lat);
+        if (n != null) {
+            routeCache.putSnap(lon, lat, version, n.id);
+        }
+        return n;
+    }
+
+    private static double routeLength(List<Node> path) {
+        double length = 0;
+        for (int i = 0; i < path.size() - 1; i++) {
+            length += GraphDB.distance(path.get(i), path.get(i + 1));
+        }
+        return length;
     }
 
     /**
      * Clear the current found route, if it exists.
      */
-    public static void clearRoute() {
+    public static synchronized void clearRoute() {
         route = null;
+        routeNodes = null;
     }
 
     /**
@@ -4,11 +4,17 @@
 import java.util.HashSet;
 import java.util.Set;
 
-public class Node implements Comparable<Node> {
+public class Node {
     Long id;
     Double lat, lon;
     Set<Connections> connectionsSet;
-    double fn;
+    /* For shape points folded into a contracted edge: the edge, our index in its via list and
+     * the distance in meters from its n1. Null for junctions, which keep their connectionsSet. */
+    Connections chain;
+    int chainIndex;
+    double chainOffset;
+    /* The GraphPartitions cell holding this node; always 0 for a graph parsed whole. */
+    int partition;
 
     public Node(Long id, Double lat, Double lon) {
         this.id = id;
@@ -17,18 +23,6 @@ public class Node implements Comparable<Node> {
         connectionsSet = new HashSet<>();
     }
 
-    public void setFn(double fn) {
-        this.fn = fn;
-    }
-
-    public int compareTo(Node n) {
-        if (this.fn < n.fn) {
-            return -1;
-        } else {
-            return 1;
-        }
-    }
-
     @Override
     public String toString() {
         return "Node{" +
@@ -99,7 +99,7 @@ public class QuadTree {
     public void traverseDepth(QTreeNode n, int depth, double ullat, double lrlat, double ullon, double lrlon, ArrayList tiles) {
         if (n.satisfiesDepth(depth) && n.intersectsTile(ullat, lrlat, ullon, lrlon)) {
             tiles.add(n);
-        } else {
+        } else if (n.child1 != null) {
             if (n.child1.intersectsTile(ullat, lrlat, ullon, lrlon)) {
                 traverseDepth(n.child1, depth, ullat, lrlat, ullon, lrlon, tiles);
             }
@@ -0,0 +1,49 @@
+import java.awt.image.BufferedImage;
+import java.util.Map;
+
+/**
+ * Caches the two layers of a rastered image separately. Base mosaics (stitched tiles) are keyed
+ * by their tile range alone, so they are shared between users with different routes. Route
+ * overlays are transparent images cropped to the part of the route's bounding box inside the
+ * mosaic, keyed by route id and tile range, so changing the route re-renders only the thin
+ * overlay.
+ * Route ids are assigned by MapServer.setRoute(); they name a route by identity, not contents.
+ * Cached images are never drawn on again; callers composite onto a fresh image.
+ */
+public class RasterCache {
+    /** A transparent route layer and where its upper left corner sits on the mosaic. */
+    public static class Overlay {
+        final BufferedImage image;
+        final int x, y;
+
+        Overlay(BufferedImage image, int x, int y) {
+            this.image = image;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private final Map<String, BufferedImage> bases;
+    private final Map<String, Overlay> overlays;
+
+    public RasterCache(int maxBases, int maxOverlays) {
+        bases = new LruMap<>(maxBases);
+        overlays = new LruMap<>(maxOverlays);
+    }
+
+    public synchronized BufferedImage getBase(String tileRange) {
+        return bases.get(tileRange);
+    }
+
+    public synchronized void putBase(String tileRange, BufferedImage base) {
+        bases.put(tileRange, base);
+    }
+
+    public synchronized Overlay getOverlay(long routeId, String tileRange) {
+        return overlays.get(routeId + "@" + tileRange);
+    }
+
+    public synchronized void putOverlay(long routeId, String tileRange, Overlay overlay) {
+        overlays.put(routeId + "@" + tileRange, overlay);
+    }
+}
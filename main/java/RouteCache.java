@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of finished routes, keyed by the snapped (start node, end node) pair and
+ * the CostProfile they were searched under.
+ * A second, smaller map remembers which node a requested coordinate snapped to, so a
+ * repeated request skips the linear findClosest scan as well as the search.
+ * All entries are dropped as soon as the graph they were computed on is replaced.
+ */
+public class RouteCache {
+    /**
+     * An immutable cached route: its nodes and their ids from start to end, and its length in
+     * meters. The nodes are kept so the route can be drawn after a partitioned graph evicts them.
+     */
+    public static class Route {
+        final List<Node> nodes;
+        final List<Long> path;
+        final double length;
+        final long searchNanos;
+
+        Route(List<Node> nodes, double length, long searchNanos) {
+            this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+            List<Long> ids = new ArrayList<>(nodes.size());
+            for (Node n : nodes) {
+                ids.add(n.id);
+            }
+            this.path = Collections.unmodifiableList(ids);
+            this.length = length;
+            this.searchNanos = searchNanos;
+        }
+
+        public List<Node> getNodes() {
+            return nodes;
+        }
+
+        public List<Long> getPath() {
+            return path;
+        }
+
+        public double getLength() {
+            return length;
+        }
+    }
+
+    private final Map<String, Route> routes;
+    private final Map<String, Long> snaps;
+    private long version;
+    private long hits;
+    private long misses;
+    private long savedNanos;
+
+    public RouteCache(int maxRoutes, int maxSnaps, long version) {
+        this.routes = new LruMap<>(maxRoutes);
+        this.snaps = new LruMap<>(maxSnaps);
+        this.version = version;
+    }
+
+    private static String key(long startId, long endId, CostProfile profile) {
+        return startId + ">" + endId + ":" + profile.getName();
+    }
+
+    private static String key(double lon, double lat) {
+        return lon + "," + lat;
+    }
+
+    /**
+     * Drop every entry if the graph version has moved on since they were cached.
+     */
+    private void checkVersion(long graphVersion) {
+        if (graphVersion != version) {
+            routes.clear();
+            snaps.clear();
+            version = graphVersion;
+        }
+    }
+
+    /**
+     * @return The cached route between the two snapped nodes, or null on a miss.
+     */
+    public synchronized Route get(long startId, long endId, CostProfile profile,
+                                  long graphVersion) {
+        checkVersion(graphVersion);
+        Route r = routes.get(key(startId, endId, profile));
+        if (r == null) {
+            misses++;
+        } else {
+            hits++;
+            savedNanos += r.searchNanos;
+        }
+        return r;
+    }
+
+    public synchronized void put(long startId, long endId, CostProfile profile,
+                                 long graphVersion, Route r) {
+        checkVersion(graphVersion);
+        routes.put(key(startId, endId, profile), r);
+    }
+
+    /**
+     * @return The id of the node (lon, lat) snapped to, or null if it is not cached.
+     */
+    public synchronized Long getSnap(double lon, double lat, long graphVersion) {
+        checkVersion(graphVersion);
+        return snaps.get(key(lon, lat));
+    }
+
+    public synchronized void putSnap(double lon, double lat, long graphVersion, long nodeId) {
+        checkVersion(graphVersion);
+        snaps.put(key(lon, lat), nodeId);
+    }
+
+    /**
+     * @return Counters for the Json response: "hits", "misses", "hit_ratio", "size" and
+     * "saved_search_ms", the summed search time of every route served from the cache.
+     */
+    public synchronized Map<String, Object> stats() {
+        long total = hits + misses;
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hit_ratio", total == 0 ? 0.0 : (double) hits / total);
+        stats.put("size", routes.size());
+        stats.put("saved_search_ms", savedNanos / 1e6);
+        return stats;
+    }
+}
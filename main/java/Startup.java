@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the server's startup work as a dependency graph of named stages on a thread pool.
+ * Each stage starts as soon as every stage it depends on has finished, so independent
+ * structures (the road graph, the tile quadtree) are built concurrently. Request handlers ask
+ * isReady() for the stages they need instead of blocking on them.
+ */
+public class Startup {
+    public enum State { PENDING, RUNNING, DONE, FAILED }
+
+    private static class Stage {
+        final String name;
+        final String[] dependsOn;
+        final Runnable work;
+        volatile State state = State.PENDING;
+        volatile long startNanos, endNanos;
+        CompletableFuture<Void> future;
+
+        Stage(String name, String[] dependsOn, Runnable work) {
+            this.name = name;
+            this.dependsOn = dependsOn;
+            this.work = work;
+        }
+
+        double elapsedMs() {
+            if (state == State.PENDING) {
+                return 0;
+            }
+            long end = state == State.RUNNING ? System.nanoTime() : endNanos;
+            return (end - startNanos) / 1e6;
+        }
+    }
+
+    private final LinkedHashMap<String, Stage> stages = new LinkedHashMap<>();
+    private final ExecutorService pool;
+    private CompletableFuture<Void> all;
+    private long startNanos;
+
+    public Startup(int threads) {
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "startup");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Add a stage. Every stage it depends on must already have been added.
+     * @return this, so stages can be chained.
+     */
+    public Startup stage(String name, Runnable work, String... dependsOn) {
+        for (String d : dependsOn) {
+            if (!stages.containsKey(d)) {
+                throw new IllegalArgumentException("Stage " + name + " depends on unknown " + d);
+            }
+        }
+        stages.put(name, new Stage(name, dependsOn, work));
+        return this;
+    }
+
+    /**
+     * Schedule every stage and return immediately.
+     * @return this, so the caller can await() if it needs everything loaded.
+     */
+    public Startup start() {
+        startNanos = System.nanoTime();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Stage s : stages.values()) {
+            CompletableFuture<?>[] deps = new CompletableFuture<?>[s.dependsOn.length];
+            for (int i = 0; i < deps.length; i++) {
+                deps[i] = stages.get(s.dependsOn[i]).future;
+            }
+            s.future = CompletableFuture.allOf(deps).thenRunAsync(() -> run(s), pool);
+            /* A stage whose dependency failed never runs; it has failed too. */
+            s.future.whenComplete((v, e) -> {
+                if (e != null) {
+                    s.state = State.FAILED;
+                }
+            });
+            futures.add(s.future);
+        }
+        all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        all.whenComplete((v, e) -> {
+            pool.shutdown();
+            System.out.println(timings());
+        });
+        return this;
+    }
+
+    private void run(Stage s) {
+        s.startNanos = System.nanoTime();
+        s.state = State.RUNNING;
+        try {
+            s.work.run();
+            s.endNanos = System.nanoTime();
+            s.state = State.DONE;
+        } catch (RuntimeException e) {
+            s.endNanos = System.nanoTime();
+            s.state = State.FAILED;
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Block until every stage has finished or failed.
+     * @throws RuntimeException The exception of a failed stage, if any stage failed; status()
+     * shows which ones.
+     */
+    public void await() {
+        try {
+            all.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return Whether every named stage has finished, or every stage if none are named.
+     */
+    public boolean isReady(String... names) {
+        if (names.length == 0) {
+            return isReady(stages.keySet().toArray(new String[0]));
+        }
+        for (String n : names) {
+            if (get(n).state != State.DONE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The first of the named stages, or of every stage if none are named, that has
+     * failed and so will never be ready; null if none has.
+     */
+    public String failed(String... names) {
+        if (names.length == 0) {
+            return failed(stages.keySet().toArray(new String[0]));
+        }
+        for (String n : names) {
+            if (get(n).state == State.FAILED) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    private Stage get(String name) {
+        Stage s = stages.get(name);
+        if (s == null) {
+            throw new IllegalArgumentException("Unknown stage " + name);
+        }
+        return s;
+    }
+
+    /**
+     * @return A map for the Json response: "ready" -> Boolean, and "stages" -> for each stage
+     * in the order added, its "state" and "elapsed_ms" so far.
+     */
+    public Map<String, Object> status() {
+        LinkedHashMap<String, Object> perStage = new LinkedHashMap<>();
+        for (Stage s : stages.values()) {
+            HashMap<String, Object> info = new HashMap<>();
+            info.put("state", s.state.name().toLowerCase());
+            info.put("elapsed_ms", s.elapsedMs());
+            perStage.put(s.name, info);
+        }
+        HashMap<String, Object> status = new HashMap<>();
+        status.put("ready", isReady());
+        status.put("stages", perStage);
+        return status;
+    }
+
+    private String timings() {
+        StringBuilder sb = new StringBuilder("Startup finished in ");
+        sb.append(String.format("%.0f ms:", (System.nanoTime() - startNanos) / 1e6));
+        for (Stage s : stages.values()) {
+            sb.append(String.format(" %s %.0f ms (%s)", s.name, s.elapsedMs(),
+                    s.state.name().toLowerCase()));
+        }
+        return sb.toString();
+    }
+}
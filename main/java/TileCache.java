@@ -0,0 +1,98 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Bounded LRU cache of decoded tile images, keyed by tile file name ("1", "243", ...).
+ * Tiles are decoded either on demand by a raster request or ahead of time by the
+ * TilePrefetcher. Prefetched tiles wait in their own, separately capped LRU area until a
+ * request uses them, which counts as a prefetch hit and moves them into the main area; so
+ * guesses only ever evict older guesses, never the tiles clients are looking at.
+ */
+public class TileCache {
+    private final String root;
+    private final Map<String, BufferedImage> tiles;
+    /* Prefetched tiles no request has used yet. */
+    private final Map<String, BufferedImage> unused;
+    private long hits, misses, prefetched, prefetchHits;
+
+    /**
+     * @param root The folder the tile images are in, ending in a separator.
+     * @param maxPrefetched Most prefetched tiles kept before a request uses them.
+     */
+    public TileCache(String root, int maxTiles, int maxPrefetched) {
+        this.root = root;
+        this.tiles = new LruMap<>(maxTiles);
+        this.unused = new LruMap<>(maxPrefetched);
+    }
+
+    /**
+     * The decoded tile, read from disk if it is not cached.
+     */
+    public BufferedImage get(String name) throws IOException {
+        synchronized (this) {
+            BufferedImage bi = tiles.get(name);
+            if (bi != null) {
+                hits++;
+                return bi;
+            }
+            bi = unused.remove(name);
+            if (bi != null) {
+                hits++;
+                prefetchHits++;
+                tiles.put(name, bi);
+                return bi;
+            }
+            misses++;
+        }
+        BufferedImage bi = read(name);
+        synchronized (this) {
+            tiles.put(name, bi);
+        }
+        return bi;
+    }
+
+    public synchronized boolean contains(String name) {
+        return tiles.containsKey(name) || unused.containsKey(name);
+    }
+
+    /**
+     * Decode the tile into the prefetch area unless it is already cached.
+     */
+    public void prefetch(String name) throws IOException {
+        if (contains(name)) {
+            return;
+        }
+        BufferedImage bi = read(name);
+        synchronized (this) {
+            if (!contains(name)) {
+                unused.put(name, bi);
+                prefetched++;
+            }
+        }
+    }
+
+    private BufferedImage read(String name) throws IOException {
+        return ImageIO.read(new File(root + name + ".png"));
+    }
+
+    /**
+     * @return Counters for the Json response: "hits", "misses", "size", "prefetch_size",
+     * "prefetched", "prefetch_hits" and "prefetch_hit_rate", the share of prefetched tiles a
+     * request used.
+     */
+    public synchronized Map<String, Object> stats() {
+        HashMap<String, Object> stats = new HashMap<>();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("size", tiles.size());
+        stats.put("prefetch_size", unused.size());
+        stats.put("prefetched", prefetched);
+        stats.put("prefetch_hits", prefetchHits);
+        stats.put("prefetch_hit_rate", prefetched == 0 ? 0.0 : (double) prefetchHits / prefetched);
+        return stats;
+    }
+}
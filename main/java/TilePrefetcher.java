@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Guesses which tiles a client will ask for next and decodes them into the TileCache in the
+ * background. For each client it remembers the last query box; when the next box at the same
+ * depth has moved, the box one more step along the same pan is prefetched first, followed by
+ * the tiles covering the current box one level up and one level down the quadtree.
+ * Prefetching runs on a single minimum priority thread with a short queue that drops its
+ * oldest guesses, and waits while any foreground raster request is in flight.
+ */
+public class TilePrefetcher {
+    /** Deepest level of the tile quadtree; see MapServer.getDepth(). */
+    private static final int MAX_DEPTH = 7;
+    /** Most tiles scheduled per recorded viewport, and most tasks waiting at once. */
+    private static final int MAX_TILES_PER_MOVE = 48, QUEUE_SIZE = 128;
+    private static final int MAX_CLIENTS = 1024;
+    private static final long FOREGROUND_BACKOFF_MS = 20;
+
+    private static class Viewport {
+        final double ullat, ullon, lrlat, lrlon;
+        final int depth;
+
+        Viewport(double ullat, double ullon, double lrlat, double lrlon, int depth) {
+            this.ullat = ullat;
+            this.ullon = ullon;
+            this.lrlat = lrlat;
+            this.lrlon = lrlon;
+            this.depth = depth;
+        }
+    }
+
+    private final QuadTree tree;
+    private final TileCache cache;
+    private final Map<String, Viewport> viewports = new LruMap<>(MAX_CLIENTS);
+    private final AtomicInteger foreground = new AtomicInteger();
+    private final ThreadPoolExecutor pool;
+    private long scheduled;
+
+    public TilePrefetcher(QuadTree tree, TileCache cache) {
+        this.tree = tree;
+        this.cache = cache;
+        pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+                    Thread t = new Thread(r, "tile-prefetch");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Mark a foreground raster request as started; prefetching pauses until it ends.
+     */
+    public void beginForeground() {
+        foreground.incrementAndGet();
+    }
+
+    public void endForeground() {
+        foreground.decrementAndGet();
+    }
+
+    /**
+     * Remember the client's latest query box and schedule the tiles it is likely to need next.
+     * @param client Any stable identifier for the client, e.g. its address.
+     */
+    public void record(String client, double ullat, double ullon, double lrlat, double lrlon,
+                       int depth) {
+        Viewport now = new Viewport(ullat, ullon, lrlat, lrlon, depth);
+        Viewport last;
+        synchronized (viewports) {
+            last = viewports.put(client, now);
+        }
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        if (last != null && last.depth == depth) {
+            double dLat = ullat - last.ullat;
+            double dLon = ullon - last.ullon;
+            if (dLat != 0 || dLon != 0) {
+                collect(names, ullat + dLat, ullon + dLon, lrlat + dLat, lrlon + dLon, depth);
+            }
+        }
+        if (depth > 0) {
+            collect(names, ullat, ullon, lrlat, lrlon, depth - 1);
+        }
+        if (depth < MAX_DEPTH) {
+            collect(names, ullat, ullon, lrlat, lrlon, depth + 1);
+        }
+        int count = 0;
+        for (String name : names) {
+            if (count == MAX_TILES_PER_MOVE) {
+                break;
+            }
+            if (!cache.contains(name)) {
+                pool.execute(() -> prefetch(name));
+                count++;
+                synchronized (this) {
+                    scheduled++;
+                }
+            }
+        }
+    }
+
+    private void collect(LinkedHashSet<String> names, double ullat, double ullon, double lrlat,
+                         double lrlon, int depth) {
+        ArrayList<QuadTree.QTreeNode> tiles = new ArrayList<>();
+        if (tree.root().intersectsTile(ullat, lrlat, ullon, lrlon)) {
+            tree.traverseDepth(tree.root(), depth, ullat, lrlat, ullon, lrlon, tiles);
+        }
+        for (QuadTree.QTreeNode tile : tiles) {
+            names.add(tile.getFileName());
+        }
+    }
+
+    private void prefetch(String name) {
+        try {
+            while (foreground.get() > 0) {
+                Thread.sleep(FOREGROUND_BACKOFF_MS);
+            }
+            cache.prefetch(name);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            /* A missing tile just isn't prefetched; the foreground read will report it. */
+        }
+    }
+
+    /**
+     * @return The tile cache counters plus "prefetch_scheduled" and "prefetch_queued".
+     */
+    public Map<String, Object> stats() {
+        HashMap<String, Object> stats = new HashMap<>(cache.stats());
+        synchronized (this) {
+            stats.put("prefetch_scheduled", scheduled);
+        }
+        stats.put("prefetch_queued", pool.getQueue().size());
+        return stats;
+    }
+}